@@ -35,14 +35,37 @@ public class ArithmeticExpressionEvaluator {
     // postfix expression stored in a queue
     private Queue<String> postfixExpression;
     
+    // true if the transcendental functions are the FastMath approximations
+    private boolean fastMath;
+
      // map of operators, functions, and constants
     private Map<String, Operator> operators;
     private Map<String, Function> functions;
     private Map<String, Constant> constants;
+
+    // version of the registered operators, functions, and constants; it must
+    // be incremented whenever a registered name changes meaning, so that
+    // programs saved by ProgramFile are not loaded against the wrong registry
+    static final int REGISTRY_VERSION = 1;
     
     // Constructor to initialize an arithmetic expression
     public ArithmeticExpressionEvaluator(String expr) {
+        this(expr, false);
+    }
+
+    // Constructor to initialize an arithmetic expression; if fastMath is set,
+    // the transcendental functions use the approximations in FastMath
+    public ArithmeticExpressionEvaluator(String expr, boolean fastMath) {
+        this(expr, null, fastMath);
+    }
+
+    // Constructor to initialize an expression that is already converted to
+    // postfix; the expression is not tokenized again. ProgramFile passes an
+    // empty one to look up the registered symbols.
+    ArithmeticExpressionEvaluator(String expr, Queue<String> postfix,
+            boolean fastMath) {
         originalExpression = expr;
+        this.fastMath = fastMath;
         
         // map of arithmetic operators
         operators = new Map<>();
@@ -97,41 +120,17 @@ public class ArithmeticExpressionEvaluator {
             public double eval(double x) { return Math.abs(x); }
         });
         
-        // sin
-        registerFunction(new Function("sin", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.sin(x); }
-        });
-
-        // cos
-        registerFunction(new Function("cos", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.cos(x); }
-        });
-
-        // tan
-        registerFunction(new Function("tan", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.tan(x); }
-        });
-
-        // log
-        registerFunction(new Function("log", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.log10(x); }
-        });
-
-        // log
-        registerFunction(new Function("ln", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.log(x); }
-        });
+        // transcendental functions; strict unless fast math was requested
+        if (fastMath) {
+            registerFastMath();
+        } else {
+            registerStrictMath();
+        }
 
-        // exp
-        registerFunction(new Function("exp", 1, 4) {
-            @Override
-            public double eval(double x) { return Math.exp(x); }
-        });
+        if (postfix != null) {
+            postfixExpression = postfix;
+            return;
+        }
 
         infixExpression = new Queue<>();
         Tokenizer tokenizer = new Tokenizer(originalExpression);
@@ -222,11 +221,11 @@ public class ArithmeticExpressionEvaluator {
         return postfixExpression.toString();
     }
 
-    // evaluate postfix expression
+    // evaluate postfix expression; the expression is kept, so it can be
+    // evaluated again
     public double evalPostfix() {
         Stack<Double> resultStack = new Stack<>();
-        String token = postfixExpression.remove();
-        while (token != null) {
+        for (String token : postfixExpression) {
             if (operators.containsKey(token)) {
                 // token is an operator
                 Operator op = operators.get(token);
@@ -253,11 +252,116 @@ public class ArithmeticExpressionEvaluator {
                     System.exit(1);
                 }
             }
-            token = postfixExpression.remove();
         }
         return resultStack.pop();
     }
     
+    // return the expression as entered by the user
+    String getOriginalExpression() { return originalExpression; }
+
+    // return true if the FastMath function set is registered
+    boolean isFastMath() { return fastMath; }
+
+    // return true if token names a registered operator, function or constant
+    boolean isSymbol(String token) {
+        return operators.containsKey(token) || functions.containsKey(token) ||
+            constants.containsKey(token);
+    }
+
+    // return the registered operator, function or constant of a given name,
+    // or null if there is none
+    Operator getOperator(String token) { return operators.get(token); }
+    Function getFunction(String token) { return functions.get(token); }
+    Constant getConstant(String token) { return constants.get(token); }
+
+    // return the tokens of the postfix expression; the expression is
+    // converted first if that has not been done yet
+    String[] getPostfixTokens() {
+        if (postfixExpression == null) convInfixToPostfix();
+        String[] tokens = new String[postfixExpression.size()];
+        int i = 0;
+        for (String token : postfixExpression) tokens[i++] = token;
+        return tokens;
+    }
+
+    // register the transcendental functions from java.lang.Math
+    private void registerStrictMath() {
+        // sin
+        registerFunction(new Function("sin", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.sin(x); }
+        });
+
+        // cos
+        registerFunction(new Function("cos", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.cos(x); }
+        });
+
+        // tan
+        registerFunction(new Function("tan", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.tan(x); }
+        });
+
+        // log
+        registerFunction(new Function("log", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.log10(x); }
+        });
+
+        // log
+        registerFunction(new Function("ln", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.log(x); }
+        });
+
+        // exp
+        registerFunction(new Function("exp", 1, 4) {
+            @Override
+            public double eval(double x) { return Math.exp(x); }
+        });
+    }
+
+    // register the fast approximations of the transcendental functions
+    private void registerFastMath() {
+        // sin
+        registerFunction(new Function("sin", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.sin(x); }
+        });
+
+        // cos
+        registerFunction(new Function("cos", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.cos(x); }
+        });
+
+        // tan
+        registerFunction(new Function("tan", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.tan(x); }
+        });
+
+        // log
+        registerFunction(new Function("log", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.log(x); }
+        });
+
+        // log
+        registerFunction(new Function("ln", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.ln(x); }
+        });
+
+        // exp
+        registerFunction(new Function("exp", 1, 4) {
+            @Override
+            public double eval(double x) { return FastMath.exp(x); }
+        });
+    }
+
     // abstract base class for operators, functions, and constants
     private abstract class Token {
         protected String name; // string representation        
@@ -267,7 +371,7 @@ public class ArithmeticExpressionEvaluator {
     }
 
     // Implements arithmetic operators (+, -, *, /, ^)
-    private abstract class Operator extends Token {
+    abstract class Operator extends Token {
         private boolean leftAssociated; // true for leftAssociated
         
         // constructor
@@ -290,7 +394,7 @@ public class ArithmeticExpressionEvaluator {
     }
 
     // Implements arithmetic functions (abs, sin, cos, etc.)
-    private abstract class Function extends Token {
+    abstract class Function extends Token {
         private int numOfArgs; // num of arguments
 
         // constructor
@@ -313,7 +417,7 @@ public class ArithmeticExpressionEvaluator {
     }
     
     // Implements arithmetic constants (pi, e)
-     private abstract class Constant extends Token {
+     abstract class Constant extends Token {
         // constructor
         public Constant(String name) { this.name = name; }
 
@@ -407,14 +511,15 @@ public class ArithmeticExpressionEvaluator {
 
     // Unit test
     public static void main(String[] args) {
-        if (args.length != 1 ) {
-            System.out.println(
-                "Usage: java ArithmeticExpressionEvaluator \"<expression>\"");
+        boolean fastMath = (args.length == 2) && args[0].equals("-fast");
+        if ((args.length != 1) && !fastMath) {
+            System.out.println("Usage: java ArithmeticExpressionEvaluator " +
+                "[-fast] \"<expression>\"");
                 return;
         }
 
         ArithmeticExpressionEvaluator evaluator =
-            new ArithmeticExpressionEvaluator(args[0]);
+            new ArithmeticExpressionEvaluator(args[args.length - 1], fastMath);
         System.out.println("* Original: " + evaluator.originalExpression);
         System.out.println("  Infix   : " + evaluator.getInfixString());
         System.out.println("  Postfix : " + evaluator.convInfixToPostfix());
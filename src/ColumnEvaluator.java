@@ -0,0 +1,216 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  Out-of-core evaluation of a compiled expression over columns of data
+//  Each variable is bound by name to a file of little-endian doubles, one
+//  value per row, and the result of every row is written to an output file
+//  of the same layout. The files are memory-mapped one chunk of rows at a
+//  time, so the data is never copied to the heap and files larger than the
+//  heap (or than 2 GB) can be processed.
+//
+//  Java cannot unmap a buffer explicitly; a chunk's mapping is only released
+//  when the garbage collector reclaims the buffer. Each output chunk is
+//  therefore forced to disk before the next one is mapped, so dirty pages do
+//  not pile up, and the buffers of a chunk are replaced by the next ones. The
+//  address space still held by unreclaimed mappings is bounded by the size of
+//  the files, which matters on 32-bit JVMs only.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class ColumnEvaluator {
+    // rows mapped at a time; 8 MB per column, so a chunk is large enough to
+    // amortize the cost of mapping it and small enough to be written back
+    // quickly
+    private static final int CHUNK_ROWS = 1 << 20;
+
+    // no instances; all methods are static
+    private ColumnEvaluator() {}
+
+    // Evaluate expr for every row of the input columns and write the results
+    // to outputFile; names[i] binds a variable to the column in inputFiles[i].
+    // Returns the number of rows.
+    public static long eval(CompiledExpression expr, String[] names,
+            String[] inputFiles, String outputFile) throws IOException {
+        if (names.length != inputFiles.length) {
+            throw new IllegalArgumentException(
+                "Number of names and input files differ");
+        }
+
+        // bind every variable of the expression to an input column
+        String[] variables = expr.getVariables();
+        FileChannel[] inputs = new FileChannel[variables.length];
+        FileChannel output = null;
+        try {
+            long rows = -1;
+            for (int slot = 0; slot < variables.length; slot++) {
+                int column = -1;
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(variables[slot])) column = i;
+                }
+                if (column < 0) {
+                    throw new IllegalArgumentException(
+                        "No column bound to variable \"" + variables[slot] +
+                        "\"");
+                }
+                inputs[slot] = FileChannel.open(Paths.get(inputFiles[column]),
+                    StandardOpenOption.READ);
+                long size = inputs[slot].size();
+                if ((size % 8 != 0) || ((rows >= 0) && (size / 8 != rows))) {
+                    throw new IOException(inputFiles[column] +
+                        ": column size does not match");
+                }
+                rows = size / 8;
+            }
+            if (rows < 0) {
+                throw new IllegalArgumentException(
+                    "Expression has no variables to bind to columns");
+            }
+
+            output = FileChannel.open(Paths.get(outputFile),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            double[] values = new double[variables.length];
+            double[] stack = new double[expr.getStackSize()];
+            DoubleBuffer[] columns = new DoubleBuffer[variables.length];
+            for (long first = 0; first < rows; first += CHUNK_ROWS) {
+                int count = (int) Math.min(CHUNK_ROWS, rows - first);
+                for (int slot = 0; slot < columns.length; slot++) {
+                    columns[slot] = inputs[slot].map(
+                        FileChannel.MapMode.READ_ONLY, first * 8, count * 8L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                }
+                MappedByteBuffer chunk = output.map(
+                    FileChannel.MapMode.READ_WRITE, first * 8, count * 8L);
+                DoubleBuffer result =
+                    chunk.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                for (int row = 0; row < count; row++) {
+                    for (int slot = 0; slot < values.length; slot++) {
+                        values[slot] = columns[slot].get(row);
+                    }
+                    result.put(row, expr.eval(values, stack));
+                }
+                // write the chunk back before mapping the next one
+                chunk.force();
+            }
+            return rows;
+        } finally {
+            for (FileChannel input : inputs) {
+                if (input != null) input.close();
+            }
+            if (output != null) output.close();
+        }
+    }
+
+    // write a column file; used by the unit test
+    private static void writeColumn(File file, double[] data)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (double value : data) {
+                out.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(
+                    value)));
+            }
+        }
+    }
+
+    // Unit test: evaluate an expression over two generated columns, or
+    // over given columns: [-fast] "<expression>" <output> <name>=<input> ...
+    // where -fast selects the FastMath functions, as in the evaluator
+    public static void main(String[] args) throws IOException {
+        boolean fastMath = (args.length > 0) && args[0].equals("-fast");
+        int first = fastMath ? 1 : 0; // index of the expression
+        if (args.length - first >= 3) {
+            String[] names = new String[args.length - first - 2];
+            String[] files = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String binding = args[first + 2 + i];
+                int split = binding.indexOf('=');
+                if (split < 0) {
+                    System.out.println("Error: expected <name>=<file> but " +
+                        "found \"" + binding + "\"");
+                    System.exit(1);
+                }
+                names[i] = binding.substring(0, split);
+                files[i] = binding.substring(split + 1);
+            }
+            CompiledExpression expr = new CompiledExpression(
+                new ArithmeticExpressionEvaluator(args[first], fastMath));
+            long rows = eval(expr, names, files, args[first + 1]);
+            System.out.println(rows + " rows written to " + args[first + 1]);
+            return;
+        }
+
+        int rows = 3 * CHUNK_ROWS + 12345; // several chunks, last one partial
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = i * 1e-3;
+            y[i] = 1.0 + (i % 1000);
+        }
+        File fileX = File.createTempFile("expeval-x", ".bin");
+        File fileY = File.createTempFile("expeval-y", ".bin");
+        File fileOut = File.createTempFile("expeval-out", ".bin");
+        fileX.deleteOnExit();
+        fileY.deleteOnExit();
+        fileOut.deleteOnExit();
+        writeColumn(fileX, x);
+        writeColumn(fileY, y);
+
+        CompiledExpression expr = new CompiledExpression(
+            new ArithmeticExpressionEvaluator("2*x^2-sin(x)/y+ln(y)*-x"));
+        long t0 = System.nanoTime();
+        eval(expr, new String[] { "y", "x" },
+            new String[] { fileY.getPath(), fileX.getPath() },
+            fileOut.getPath());
+        long t1 = System.nanoTime();
+
+        int failures = 0;
+        try (FileChannel channel = FileChannel.open(fileOut.toPath(),
+                StandardOpenOption.READ)) {
+            DoubleBuffer result = channel.map(FileChannel.MapMode.READ_ONLY,
+                0, channel.size()).order(ByteOrder.LITTLE_ENDIAN)
+                .asDoubleBuffer();
+            if (result.limit() != rows) failures++;
+            for (int i = 0; (i < rows) && (failures == 0); i++) {
+                double expected = 2 * Math.pow(x[i], 2) -
+                    Math.sin(x[i]) / y[i] + Math.log(y[i]) * (0 - x[i]);
+                if (Double.compare(result.get(i), expected) != 0) failures++;
+            }
+        }
+        System.out.println("Rows     : " + rows);
+        System.out.println("Time     : " + (t1 - t0) / 1000000 + " ms (" +
+            (double) (t1 - t0) / rows + " ns/row)");
+        System.out.println(failures == 0 ? "PASS" : "FAIL");
+        if (failures != 0) System.exit(1);
+    }
+}
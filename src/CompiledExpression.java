@@ -0,0 +1,437 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  A postfix expression resolved for repeated evaluation
+//  Numbers and symbolic constants are turned into a constant pool, operators
+//  and functions into direct references, and every other identifier into a
+//  variable slot. Unlike evalPostfix(), eval() can be called any number of
+//  times with different variable values.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.util.Arrays;
+
+public class CompiledExpression {
+    // instruction opcodes; the instructions are also read by
+    // RegisterExpression through the accessors below
+    static final int CONST = 0;    // push constants[operand]
+    static final int VARIABLE = 1; // push variables[operand]
+    static final int OPERATOR = 2; // apply operators[i]
+    static final int FUNCTION = 3; // apply functions[i]
+    static final int STORE = 4;    // copy top into temp operand
+    static final int LOAD = 5;     // push temp operand
+
+    private int[] opcodes;   // one opcode per instruction
+    private int[] operands;  // constant, variable, or temp index
+    private ArithmeticExpressionEvaluator.Operator[] operators;
+    private ArithmeticExpressionEvaluator.Function[] functions;
+    private double[] constants; // constant pool
+    private String[] variables; // variable names, indexed by slot
+    private int maxStack;       // stack depth needed by eval()
+    private int temps;          // temps kept at the bottom of the stack
+
+    // node of the expression graph built by optimize()
+    private static class Node {
+        private int id;          // slot in the sharing table, unique per node
+        private int opcode;      // CONST, VARIABLE, OPERATOR or FUNCTION
+        private int operand;     // variable slot
+        private double value;    // constant value
+        private ArithmeticExpressionEvaluator.Operator operator;
+        private ArithmeticExpressionEvaluator.Function function;
+        private Node a, b;       // arguments
+        private int uses;        // number of references to this node
+        private int temp = -1;   // temp holding the value once emitted
+    }
+
+    // Constructor for optimize()
+    private CompiledExpression() {}
+
+    // Constructor; compiles the postfix expression of an evaluator, which is
+    // converted first if that has not been done yet
+    public CompiledExpression(ArithmeticExpressionEvaluator evaluator) {
+        String[] tokens = evaluator.getPostfixTokens();
+
+        // a signed variable or constant, e.g. "-x", takes three instructions
+        int length = 0;
+        for (String token : tokens) {
+            length += isSigned(evaluator, token) ? 3 : 1;
+        }
+        opcodes = new int[length];
+        operands = new int[length];
+        operators = new ArithmeticExpressionEvaluator.Operator[length];
+        functions = new ArithmeticExpressionEvaluator.Function[length];
+
+        Map<String, Integer> varIndex = new Map<>();
+        Queue<String> varNames = new Queue<>();
+        Queue<Double> pool = new Queue<>();
+        int i = 0;
+        int depth = 0;
+        for (String token : tokens) {
+            if (evaluator.getOperator(token) != null) {
+                if (depth < 2) throw invalid(token);
+                opcodes[i] = OPERATOR;
+                operators[i++] = evaluator.getOperator(token);
+                depth--;
+                continue;
+            } else if (evaluator.getFunction(token) != null) {
+                if (depth < 1) throw invalid(token);
+                opcodes[i] = FUNCTION;
+                functions[i++] = evaluator.getFunction(token);
+                continue;
+            }
+
+            // operands; a signed name is compiled as 0 - name or 0 + name
+            String name = token;
+            boolean signed = isSigned(evaluator, token);
+            if (signed) {
+                name = token.substring(1);
+                opcodes[i] = CONST;
+                operands[i++] = pool.size();
+                pool.add(0.0);
+            }
+            if (evaluator.getConstant(name) != null) {
+                opcodes[i] = CONST;
+                operands[i++] = pool.size();
+                pool.add(evaluator.getConstant(name).eval());
+            } else if (!name.isEmpty() && Character.isLetter(name.charAt(0))) {
+                if (!varIndex.containsKey(name)) {
+                    varIndex.put(name, varNames.size());
+                    varNames.add(name);
+                }
+                opcodes[i] = VARIABLE;
+                operands[i++] = varIndex.get(name);
+            } else {
+                try {
+                    double value = Double.parseDouble(name);
+                    opcodes[i] = CONST;
+                    operands[i++] = pool.size();
+                    pool.add(value);
+                } catch (NumberFormatException e) {
+                    throw invalid(token);
+                }
+            }
+            if (signed) {
+                opcodes[i] = OPERATOR;
+                operators[i++] = evaluator.getOperator(token.substring(0, 1));
+            }
+            maxStack = Math.max(maxStack, depth + (signed ? 2 : 1));
+            depth++;
+        }
+        if (depth != 1) throw invalid(evaluator.getOriginalExpression());
+
+        variables = new String[varNames.size()];
+        for (int j = 0; j < variables.length; j++) {
+            variables[j] = varNames.remove();
+        }
+        constants = new double[pool.size()];
+        for (int j = 0; j < constants.length; j++) {
+            constants[j] = pool.remove();
+        }
+    }
+
+    // Constructor for instructions that are already resolved, e.g. decoded by
+    // ProgramFile; only CONST, VARIABLE, OPERATOR and FUNCTION are accepted,
+    // and the stack depth is checked the same way as for a postfix expression
+    CompiledExpression(int[] opcodes, int[] operands,
+            ArithmeticExpressionEvaluator.Operator[] operators,
+            ArithmeticExpressionEvaluator.Function[] functions,
+            double[] constants, String[] variables) {
+        int depth = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] == OPERATOR) {
+                if ((depth < 2) || (operators[i] == null)) {
+                    throw invalid("instruction " + i);
+                }
+                depth--;
+            } else if (opcodes[i] == FUNCTION) {
+                if ((depth < 1) || (functions[i] == null)) {
+                    throw invalid("instruction " + i);
+                }
+            } else if (((opcodes[i] == CONST) &&
+                    (operands[i] >= 0) && (operands[i] < constants.length)) ||
+                    ((opcodes[i] == VARIABLE) &&
+                    (operands[i] >= 0) && (operands[i] < variables.length))) {
+                maxStack = Math.max(maxStack, ++depth);
+            } else {
+                throw invalid("instruction " + i);
+            }
+        }
+        if (depth != 1) throw invalid("instruction " + opcodes.length);
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.operators = operators;
+        this.functions = functions;
+        this.constants = constants;
+        this.variables = variables;
+    }
+
+    // check if a token is a signed variable or constant, e.g. "-x" or "-pi"
+    static boolean isSigned(ArithmeticExpressionEvaluator evaluator,
+            String token) {
+        return (token.length() > 1) &&
+            ((token.charAt(0) == '-') || (token.charAt(0) == '+')) &&
+            Character.isLetter(token.charAt(1)) &&
+            !evaluator.isSymbol(token);
+    }
+
+    // error for an invalid token or expression
+    private static IllegalArgumentException invalid(String token) {
+        return new IllegalArgumentException(
+            "Invalid expression at \"" + token + "\"");
+    }
+
+    // return the variable names; the index of a name is its slot in eval()
+    public String[] getVariables() { return variables.clone(); }
+
+    // return the slot of a variable, or -1 if the expression does not use it
+    public int getSlot(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // return the size of the stack that eval() needs
+    public int getStackSize() { return maxStack; }
+
+    // return the number of instructions
+    public int getLength() { return opcodes.length; }
+
+    // return an instruction's opcode, operand, operator, or function
+    int getOpcode(int i) { return opcodes[i]; }
+    int getOperand(int i) { return operands[i]; }
+    ArithmeticExpressionEvaluator.Operator getOperator(int i) {
+        return operators[i];
+    }
+    ArithmeticExpressionEvaluator.Function getFunction(int i) {
+        return functions[i];
+    }
+
+    // return the constant pool
+    double[] getConstants() { return constants.clone(); }
+
+    // return the number of temps used by STORE and LOAD
+    int getTemps() { return temps; }
+
+    // return an equivalent expression with operations on constants folded
+    // and common subexpressions computed only once; since all registered
+    // operators and functions are pure, the results are identical
+    public CompiledExpression optimize() {
+        // rebuild the expression as a graph, sharing structurally equal
+        // nodes; the arguments are shared already, so nodes are equal if
+        // their opcode, symbol, and arguments are, and a node's key has a
+        // fixed size no matter how large its subtree is. The open-addressing
+        // table has at least twice as many slots as there can be nodes.
+        Node[] nodes = new Node[Integer.highestOneBit(opcodes.length) << 2];
+        Node[] stack = new Node[maxStack];
+        int top = -1;
+        for (int i = 0; i < opcodes.length; i++) {
+            Node node = new Node();
+            node.opcode = opcodes[i];
+            if (opcodes[i] == CONST) {
+                node.value = constants[operands[i]];
+            } else if (opcodes[i] == VARIABLE) {
+                node.operand = operands[i];
+            } else if (opcodes[i] == OPERATOR) {
+                node.operator = operators[i];
+                node.b = stack[top--];
+                node.a = stack[top--];
+                if ((node.a.opcode == CONST) && (node.b.opcode == CONST)) {
+                    node.opcode = CONST;
+                    node.value = node.operator.eval(node.a.value, node.b.value);
+                }
+            } else if (opcodes[i] == FUNCTION) {
+                node.function = functions[i];
+                node.a = stack[top--];
+                if (node.a.opcode == CONST) {
+                    node.opcode = CONST;
+                    node.value = node.function.eval(node.a.value);
+                }
+            } else {
+                throw new IllegalStateException("Expression already optimized");
+            }
+            stack[++top] = share(nodes, node);
+        }
+        stack[top].uses++;
+        Node root = stack[top];
+
+        // emit the graph back in postfix order
+        CompiledExpression opt = new CompiledExpression();
+        opt.opcodes = new int[opcodes.length];
+        opt.operands = new int[opcodes.length];
+        opt.operators =
+            new ArithmeticExpressionEvaluator.Operator[opcodes.length];
+        opt.functions =
+            new ArithmeticExpressionEvaluator.Function[opcodes.length];
+        opt.variables = variables;
+        Queue<Double> pool = new Queue<>();
+        int length = opt.emit(root, pool);
+        opt.opcodes = Arrays.copyOf(opt.opcodes, length);
+        opt.operands = Arrays.copyOf(opt.operands, length);
+        opt.operators = Arrays.copyOf(opt.operators, length);
+        opt.functions = Arrays.copyOf(opt.functions, length);
+        opt.constants = new double[pool.size()];
+        for (int j = 0; j < opt.constants.length; j++) {
+            opt.constants[j] = pool.remove();
+        }
+
+        // stack depth after the temps
+        int depth = 0;
+        for (int i = 0; i < length; i++) {
+            int op = opt.opcodes[i];
+            if ((op == CONST) || (op == VARIABLE) || (op == LOAD)) depth++;
+            if (op == OPERATOR) depth--;
+            opt.maxStack = Math.max(opt.maxStack, depth);
+        }
+        opt.maxStack += opt.temps;
+        return opt;
+    }
+
+    // return the node equal to node, adding node if there is none yet
+    private static Node share(Node[] nodes, Node node) {
+        long hash;
+        if (node.opcode == CONST) {
+            hash = Double.doubleToRawLongBits(node.value);
+        } else if (node.opcode == VARIABLE) {
+            hash = node.operand;
+        } else if (node.opcode == OPERATOR) {
+            hash = (System.identityHashCode(node.operator) * 31L +
+                node.a.id) * 31L + node.b.id;
+        } else {
+            hash = System.identityHashCode(node.function) * 31L + node.a.id;
+        }
+        hash = (hash * 4 + node.opcode) * 0x9e3779b97f4a7c15L;
+        int mask = nodes.length - 1;
+        int i = (int) (hash >>> 32) & mask;
+        for (Node shared = nodes[i]; shared != null; shared = nodes[i]) {
+            if (equal(shared, node)) return shared;
+            i = (i + 1) & mask;
+        }
+        if (node.opcode == OPERATOR) {
+            node.a.uses++;
+            node.b.uses++;
+        } else if (node.opcode == FUNCTION) {
+            node.a.uses++;
+        }
+        node.id = i; // unique, since a slot holds a single node
+        nodes[i] = node;
+        return node;
+    }
+
+    // check if two nodes compute the same value; arguments are compared by
+    // reference, since equal arguments are already shared
+    private static boolean equal(Node x, Node y) {
+        if (x.opcode != y.opcode) return false;
+        if (x.opcode == CONST) {
+            return Double.doubleToRawLongBits(x.value) ==
+                Double.doubleToRawLongBits(y.value);
+        } else if (x.opcode == VARIABLE) {
+            return x.operand == y.operand;
+        } else if (x.opcode == OPERATOR) {
+            return (x.operator == y.operator) && (x.a == y.a) && (x.b == y.b);
+        }
+        return (x.function == y.function) && (x.a == y.a);
+    }
+
+    // emit the instructions of the graph in postfix order; returns the
+    // number of instructions. The graph is walked with an explicit stack, so
+    // deep expressions cannot overflow the call stack.
+    private int emit(Node root, Queue<Double> pool) {
+        // a node is pushed once to emit its arguments and stays on the stack
+        // until they are done, so there are at most two entries per level
+        Node[] work = new Node[2 * opcodes.length + 1];
+        boolean[] expanded = new boolean[work.length];
+        int top = 0;
+        work[0] = root;
+        int i = 0;
+        while (top >= 0) {
+            Node node = work[top];
+            if (expanded[top]) {
+                expanded[top--] = false;
+                if (node.opcode == OPERATOR) {
+                    opcodes[i] = OPERATOR;
+                    operators[i++] = node.operator;
+                } else {
+                    opcodes[i] = FUNCTION;
+                    functions[i++] = node.function;
+                }
+                if (node.uses > 1) {
+                    node.temp = temps++;
+                    opcodes[i] = STORE;
+                    operands[i++] = node.temp;
+                }
+            } else if (node.temp >= 0) {
+                opcodes[i] = LOAD;
+                operands[i++] = node.temp;
+                top--;
+            } else if (node.opcode == CONST) {
+                opcodes[i] = CONST;
+                operands[i++] = pool.size();
+                pool.add(node.value);
+                top--;
+            } else if (node.opcode == VARIABLE) {
+                opcodes[i] = VARIABLE;
+                operands[i++] = node.operand;
+                top--;
+            } else {
+                // the first argument is emitted first, so it goes on top
+                expanded[top] = true;
+                if (node.opcode == OPERATOR) work[++top] = node.b;
+                work[++top] = node.a;
+            }
+        }
+        return i;
+    }
+
+    // evaluate with the given variable values, indexed by slot
+    public double eval(double... values) {
+        return eval(values, new double[maxStack]);
+    }
+
+    // evaluate with a caller-supplied stack of at least getStackSize(); a
+    // stack must not be shared by concurrent calls
+    public double eval(double[] values, double[] stack) {
+        int top = temps - 1;
+        for (int i = 0; i < opcodes.length; i++) {
+            switch (opcodes[i]) {
+                case CONST:
+                    stack[++top] = constants[operands[i]];
+                    break;
+                case VARIABLE:
+                    stack[++top] = values[operands[i]];
+                    break;
+                case OPERATOR:
+                    double b = stack[top--];
+                    stack[top] = operators[i].eval(stack[top], b);
+                    break;
+                case FUNCTION:
+                    stack[top] = functions[i].eval(stack[top]);
+                    break;
+                case STORE:
+                    stack[operands[i]] = stack[top];
+                    break;
+                default:
+                    stack[++top] = stack[operands[i]];
+                    break;
+            }
+        }
+        return stack[top];
+    }
+}
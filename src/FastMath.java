@@ -0,0 +1,349 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  Fast approximations of the transcendental functions (sin, cos, tan, exp,
+//  ln, log) based on range reduction, small lookup tables, and minimax
+//  polynomials.
+//
+//  The polynomials are fitted to a relative error budget of 1e-7 (about 23
+//  bits), not to full double precision. Maximum relative error against
+//  java.lang.Math, as checked by main():
+//      sin, cos, tan   1e-7    for |x| <= 1e5
+//      exp             1e-8    for -708 < x < 709
+//      ln, log         1e-7    for positive normal x
+//  Arguments outside these ranges (including NaN and infinities) are passed
+//  on to java.lang.Math, so the special cases behave exactly the same. Tiny
+//  arguments of sin and tan return x itself, which keeps the sign of -0.0.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.lang.Math;
+import java.util.Random;
+
+public class FastMath {
+
+    // pi/2 split into three parts (33 + 33 + 53 bits) for Cody-Waite
+    // reduction; k * PIO2_1 and k * PIO2_2 are exact for |k| < 2^20
+    private static final double PIO2_1  = 1.57079632673412561417e+00;
+    private static final double PIO2_2  = 6.07710050630396597660e-11;
+    private static final double PIO2_2T = 2.02226624879595063154e-21;
+    private static final double TWO_OVER_PI = 6.36619772367581382433e-01;
+    private static final double TRIG_LIMIT = 1e5;
+
+    // adding 1.5 * 2^52 rounds to the nearest integer, which can then be
+    // read from the low bits; valid for magnitudes below 2^51
+    private static final double SHIFT = 6755399441055744.0;
+
+    // below this magnitude sin(x) and tan(x) round to x
+    private static final double TRIG_TINY = 0x1p-26;
+
+    // minimax coefficients for sin(r) = r * (1 + z * (S1 + z * (S2 + z * S3)))
+    // and cos(r) = 1 + z * (C1 + z * (C2 + z * C3)), z = r^2, on [-pi/4, pi/4];
+    // relative error 3.8e-9 for sin and 3.8e-8 for cos
+    private static final double S1 = -1.6666654605911418e-01;
+    private static final double S2 =  8.3321605267988960e-03;
+    private static final double S3 = -1.9515250643455910e-04;
+    private static final double C1 = -4.9999884710311404e-01;
+    private static final double C2 =  4.1655774818992130e-02;
+    private static final double C3 = -1.3591823461513181e-03;
+
+    // minimax coefficients for exp(r) on [-ln2/128, ln2/128]; error 6.6e-9
+    private static final double E0 = 1.0000000000269804e+00;
+    private static final double E1 = 1.0000036728912969e+00;
+    private static final double E2 = 4.9999908177557750e-01;
+
+    // minimax coefficients for ln(1 + r) = r + r^2 * (A2 + r * A3) on
+    // [-1/256, 1/181]; error 1.1e-8
+    private static final double A2 = -5.0000588666657620e-01;
+    private static final double A3 =  3.3333686533809960e-01;
+
+    // exp: x = (64k + j) * ln2/64 + r, with 2^(j/64) read from a table
+    private static final int EXP_BITS = 6;
+    private static final int EXP_SIZE = 1 << EXP_BITS;
+    private static final double[] EXP_TABLE = new double[EXP_SIZE];
+    private static final double LN2_64_INV = EXP_SIZE / Math.log(2.0);
+    private static final double LN2_64_HI = 6.93147180369123816490e-01 / 64;
+    private static final double LN2_64_LO = 1.90821492927058770002e-10 / 64;
+
+    // ln: m = c * (1 + r) with c = 1 + j/128 and ln(c) read from a table
+    private static final int LN_BITS = 7;
+    private static final int LN_SIZE = 1 << LN_BITS;
+    private static final int LN_OFFSET = 38; // covers m down to sqrt(1/2)
+    private static final double[] LN_TABLE = new double[LN_OFFSET + 55];
+    private static final double[] INV_TABLE = new double[LN_OFFSET + 55];
+    private static final double LN2_HI = 6.93147180369123816490e-01;
+    private static final double LN2_LO = 1.90821492927058770002e-10;
+    private static final long SQRT_HALF_BITS = 0x3fe6a09e667f3bcdL;
+    private static final double INV_LN10 = 4.34294481903251827651e-01;
+
+    static {
+        for (int j = 0; j < EXP_SIZE; j++) {
+            EXP_TABLE[j] = Math.pow(2.0, (double) j / EXP_SIZE);
+        }
+        for (int j = 0; j < LN_TABLE.length; j++) {
+            double c = 1.0 + (double) (j - LN_OFFSET) / LN_SIZE;
+            LN_TABLE[j] = Math.log(c);
+            INV_TABLE[j] = 1.0 / c;
+        }
+    }
+
+    // no instances; all methods are static
+    private FastMath() {}
+
+    // sin(r) for |r| <= pi/4
+    private static double sinKernel(double r) {
+        double z = r * r;
+        return r + r * z * (S1 + z * (S2 + z * S3));
+    }
+
+    // cos(r) for |r| <= pi/4
+    private static double cosKernel(double r) {
+        double z = r * r;
+        return 1.0 + z * (C1 + z * (C2 + z * C3));
+    }
+
+    // both kernels have the form t * (1 + z * P(z)), with t = r for sin and
+    // t = 1 for cos; the tables select one by q & 1, and the sign by q & 3
+    private static final double[] KERNEL_R   = { 1.0, 0.0 };
+    private static final double[] KERNEL_ONE = { 0.0, 1.0 };
+    private static final double[] KERNEL_1 = { S1, C1 };
+    private static final double[] KERNEL_2 = { S2, C2 };
+    private static final double[] KERNEL_3 = { S3, C3 };
+    private static final double[] QUADRANT_SIGN = { 1.0, 1.0, -1.0, -1.0 };
+
+    // sin(q * pi/2 + r); only the kernel of the quadrant is evaluated, and
+    // it is picked without a data-dependent branch
+    private static double quadrant(int q, double r) {
+        int j = q & 1;
+        double z = r * r;
+        double t = r * KERNEL_R[j] + KERNEL_ONE[j];
+        return QUADRANT_SIGN[q & 3] * (t + t * z * (KERNEL_1[j] +
+            z * (KERNEL_2[j] + z * KERNEL_3[j])));
+    }
+
+    // sine
+    public static double sin(double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.sin(x);
+        if (Math.abs(x) < TRIG_TINY) return x;
+        double k = x * TWO_OVER_PI + SHIFT;
+        int q = (int) Double.doubleToRawLongBits(k);
+        k -= SHIFT;
+        return quadrant(q, ((x - k * PIO2_1) - k * PIO2_2) - k * PIO2_2T);
+    }
+
+    // cosine; cos(x) = sin(x + pi/2)
+    public static double cos(double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.cos(x);
+        double k = x * TWO_OVER_PI + SHIFT;
+        int q = (int) Double.doubleToRawLongBits(k);
+        k -= SHIFT;
+        return quadrant(q + 1, ((x - k * PIO2_1) - k * PIO2_2) - k * PIO2_2T);
+    }
+
+    // tangent; unlike sin and cos, this needs both kernels
+    public static double tan(double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) return Math.tan(x);
+        if (Math.abs(x) < TRIG_TINY) return x;
+        double k = x * TWO_OVER_PI + SHIFT;
+        int q = (int) Double.doubleToRawLongBits(k);
+        k -= SHIFT;
+        double r = ((x - k * PIO2_1) - k * PIO2_2) - k * PIO2_2T;
+        double s = sinKernel(r);
+        double c = cosKernel(r);
+        return ((q & 1) == 0) ? s / c : -c / s;
+    }
+
+    // natural exponential
+    public static double exp(double x) {
+        if (!((x > -708.0) && (x < 709.0))) return Math.exp(x);
+        double n = x * LN2_64_INV + SHIFT;
+        int in = (int) Double.doubleToRawLongBits(n);
+        n -= SHIFT;
+        double r = (x - n * LN2_64_HI) - n * LN2_64_LO;
+        int k = in >> EXP_BITS; // floor division; j below is non-negative
+        int j = in & (EXP_SIZE - 1);
+        double p = E0 + r * (E1 + r * E2);
+        double scale = Double.longBitsToDouble((long) (k + 1023) << 52);
+        return scale * (EXP_TABLE[j] * p);
+    }
+
+    // natural logarithm
+    public static double ln(double x) {
+        if (!((x >= Double.MIN_NORMAL) && (x < Double.POSITIVE_INFINITY))) {
+            return Math.log(x);
+        }
+        // split x into m * 2^e with m in [sqrt(1/2), sqrt(2)); biasing the
+        // bits by sqrt(1/2) moves the exponent boundary without a branch
+        long bits = Double.doubleToRawLongBits(x);
+        int e = (int) ((bits - SQRT_HALF_BITS) >> 52);
+        double m = Double.longBitsToDouble(bits - ((long) e << 52));
+        // m - c is exact, so the error stays relative when e = j = 0
+        double t = m * LN_SIZE + SHIFT;
+        int j = (int) Double.doubleToRawLongBits(t) - LN_SIZE;
+        double c = (t - SHIFT) * (1.0 / LN_SIZE);
+        double r = (m - c) * INV_TABLE[j + LN_OFFSET];
+        double p = r + r * r * (A2 + r * A3);
+        return e * LN2_HI + ((e * LN2_LO + LN_TABLE[j + LN_OFFSET]) + p);
+    }
+
+    // base-10 logarithm
+    public static double log(double x) { return ln(x) * INV_LN10; }
+
+    // relative error of an approximation; exact zeros are compared directly
+    private static double relErr(double approx, double exact) {
+        if (approx == exact) return 0.0;
+        return Math.abs(approx - exact) / Math.abs(exact);
+    }
+
+    // Unit test: accuracy check and benchmark against java.lang.Math
+    public static void main(String[] args) {
+        int samples = 2000000;
+        if (args.length > 0) samples = Integer.parseInt(args[0]);
+        Random random = new Random(2017);
+        double[] trig = new double[samples];
+        double[] expo = new double[samples];
+        double[] loga = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            trig[i] = (random.nextDouble() * 2.0 - 1.0) *
+                ((i % 2 == 0) ? 10.0 : TRIG_LIMIT);
+            expo[i] = random.nextDouble() * 1416.0 - 707.0;
+            loga[i] = Math.exp(random.nextDouble() * 1400.0 - 700.0);
+        }
+
+        double errSin = 0, errCos = 0, errTan = 0, errExp = 0, errLn = 0;
+        double errLog = 0;
+        for (int i = 0; i < samples; i++) {
+            errSin = Math.max(errSin, relErr(sin(trig[i]), Math.sin(trig[i])));
+            errCos = Math.max(errCos, relErr(cos(trig[i]), Math.cos(trig[i])));
+            errTan = Math.max(errTan, relErr(tan(trig[i]), Math.tan(trig[i])));
+            errExp = Math.max(errExp, relErr(exp(expo[i]), Math.exp(expo[i])));
+            errLn  = Math.max(errLn,  relErr(ln(loga[i]), Math.log(loga[i])));
+            errLog = Math.max(errLog,
+                relErr(log(loga[i]), Math.log10(loga[i])));
+        }
+        // arguments close to 1 where ln(x) is close to zero
+        for (int i = 1; i <= 1000; i++) {
+            double x = 1.0 + i * 1e-12;
+            errLn = Math.max(errLn, relErr(ln(x), Math.log(x)));
+            x = 1.0 - i * 1e-12;
+            errLn = Math.max(errLn, relErr(ln(x), Math.log(x)));
+        }
+
+        boolean pass = true;
+        // the sign of zero is kept, as in java.lang.Math
+        boolean zeros = (1.0 / sin(-0.0) < 0) && (1.0 / tan(-0.0) < 0) &&
+            (1.0 / sin(0.0) > 0) && (1.0 / tan(0.0) > 0);
+        System.out.println((zeros ? "  PASS " : "  FAIL ") +
+            "sin, tan: sign of zero");
+        pass &= zeros;
+
+        pass &= check("sin", errSin, 1e-7);
+        pass &= check("cos", errCos, 1e-7);
+        pass &= check("tan", errTan, 1e-7);
+        pass &= check("exp", errExp, 1e-8);
+        pass &= check("ln",  errLn,  1e-7);
+        pass &= check("log", errLog, 1e-7);
+
+        // exp is benchmarked on a narrower range so its sums stay finite
+        double[] bench = new double[samples];
+        for (int i = 0; i < samples; i++) bench[i] = expo[i] / 8;
+
+        // benchmark; every loop has its own sum, printed so that the loop
+        // cannot be eliminated and the fast and strict sums can be compared
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Benchmark round " + (round + 1) +
+                " (ns per call, fast vs strict):");
+            long t0, t1, t2;
+            double fast, strict;
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : trig) fast += sin(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : trig) strict += Math.sin(x);
+            t2 = System.nanoTime();
+            report("sin", t0, t1, t2, samples, fast, strict);
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : trig) fast += cos(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : trig) strict += Math.cos(x);
+            t2 = System.nanoTime();
+            report("cos", t0, t1, t2, samples, fast, strict);
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : trig) fast += tan(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : trig) strict += Math.tan(x);
+            t2 = System.nanoTime();
+            report("tan", t0, t1, t2, samples, fast, strict);
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : bench) fast += exp(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : bench) strict += Math.exp(x);
+            t2 = System.nanoTime();
+            report("exp", t0, t1, t2, samples, fast, strict);
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : loga) fast += ln(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : loga) strict += Math.log(x);
+            t2 = System.nanoTime();
+            report("ln", t0, t1, t2, samples, fast, strict);
+
+            t0 = System.nanoTime();
+            fast = 0;
+            for (double x : loga) fast += log(x);
+            t1 = System.nanoTime();
+            strict = 0;
+            for (double x : loga) strict += Math.log10(x);
+            t2 = System.nanoTime();
+            report("log", t0, t1, t2, samples, fast, strict);
+        }
+
+        if (!pass) System.exit(1);
+    }
+
+    // print the maximum error of a function and compare it to its bound
+    private static boolean check(String name, double err, double bound) {
+        boolean ok = err <= bound;
+        System.out.println((ok ? "  PASS " : "  FAIL ") + name +
+            ": max relative error " + err + " (bound " + bound + ")");
+        return ok;
+    }
+
+    // print the timing of a single benchmark
+    private static void report(String name, long t0, long t1, long t2,
+            int n, double sumFast, double sumStrict) {
+        System.out.printf("  %-4s %8.2f %8.2f   (checksum %g %g)%n", name,
+            (double) (t1 - t0) / n, (double) (t2 - t1) / n,
+            sumFast, sumStrict);
+    }
+}
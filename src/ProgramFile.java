@@ -0,0 +1,588 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  A binary file of compiled (postfix) expressions
+//  The file is memory-mapped when loaded, and each program is decoded only
+//  when it is requested, so loading a large library of formulas neither
+//  tokenizes them nor converts them to postfix again. A program decodes
+//  straight into a CompiledExpression: the constants are read as doubles and
+//  the symbols are resolved once per file, not once per evaluation.
+//
+//  File layout (big-endian):
+//      int     magic number "EXPV"
+//      short   format version
+//      short   registry version of the evaluator that wrote the file
+//      int     number of symbols, followed by the symbol names
+//      int     number of programs, followed by the offset of each program
+//      programs, each one made of:
+//          string  original expression
+//          byte    flags (FLAG_FAST_MATH)
+//          short   number of variables, followed by the variable names
+//          short   number of constants, followed by the constants (double)
+//          int     number of instructions, each an opcode byte and a short
+//                  index into the constants, variables, or symbols
+//  Strings are stored as a short length followed by UTF-8 bytes. Symbols
+//  (operators, functions, and constants) are referenced by name, and the
+//  names are checked against the registry when the file is loaded. Every
+//  count and index is checked against its table and the end of the file, so
+//  a truncated or corrupt file is reported with an IOException.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ProgramFile {
+    private static final int MAGIC = 0x45585056; // "EXPV"
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_FAST_MATH = 1;
+
+    // instruction opcodes
+    private static final int OP_CONST = 0;    // push a constant
+    private static final int OP_VARIABLE = 1; // push a variable
+    private static final int OP_SYMBOL = 2;   // apply a registered symbol
+
+    private String fileName;   // for error messages
+    private ByteBuffer buffer; // the mapped file
+    private int[] offsets;     // offset of each program in the file
+
+    // registries and the symbol table resolved against them, indexed by
+    // flags & FLAG_FAST_MATH and then by symbol; a symbol that is neither an
+    // operator nor a function is a constant with the value in symbolValues
+    private ArithmeticExpressionEvaluator[] registries;
+    private ArithmeticExpressionEvaluator.Operator[][] symbolOperators;
+    private ArithmeticExpressionEvaluator.Function[][] symbolFunctions;
+    private double[] symbolValues;
+
+    // Constructor; use load() to open a file
+    private ProgramFile(String fileName, ByteBuffer buffer, String[] symbols,
+            int[] offsets) {
+        this.fileName = fileName;
+        this.buffer = buffer;
+        this.offsets = offsets;
+        registries = new ArithmeticExpressionEvaluator[2];
+        symbolOperators =
+            new ArithmeticExpressionEvaluator.Operator[2][symbols.length];
+        symbolFunctions =
+            new ArithmeticExpressionEvaluator.Function[2][symbols.length];
+        symbolValues = new double[symbols.length];
+        for (int mode = 0; mode < 2; mode++) {
+            registries[mode] = new ArithmeticExpressionEvaluator("",
+                new Queue<String>(), mode == FLAG_FAST_MATH);
+            for (int j = 0; j < symbols.length; j++) {
+                symbolOperators[mode][j] =
+                    registries[mode].getOperator(symbols[j]);
+                symbolFunctions[mode][j] =
+                    registries[mode].getFunction(symbols[j]);
+                if (registries[mode].getConstant(symbols[j]) != null) {
+                    symbolValues[j] =
+                        registries[mode].getConstant(symbols[j]).eval();
+                }
+            }
+        }
+    }
+
+    // Returns the number of programs in the file
+    public int size() { return offsets.length; }
+
+    // Return the original expression of a program
+    public String getExpression(int i) throws IOException {
+        ByteBuffer in = buffer.duplicate(); // independent position
+        in.position(offsets[i]);
+        return readString(in, fileName);
+    }
+
+    // Decode a program; each call returns a new CompiledExpression with the
+    // same instructions and variable slots as one compiled from the source
+    public CompiledExpression get(int i) throws IOException {
+        String where = fileName + ": program " + i;
+        ByteBuffer in = buffer.duplicate(); // independent position
+        in.position(offsets[i]);
+        need(in, 2, where);
+        int skip = in.getShort(); // original expression
+        need(in, skip + 1L, where);
+        in.position(in.position() + skip);
+        int mode = in.get() & FLAG_FAST_MATH;
+        ArithmeticExpressionEvaluator registry = registries[mode];
+
+        // the variable table also holds signed names, e.g. "-x" or "-pi",
+        // which are compiled as 0 - x the same way as by CompiledExpression
+        need(in, 2, where);
+        int entries = in.getShort();
+        need(in, 2L * entries, where);
+        String[] names = new String[entries];
+        ArithmeticExpressionEvaluator.Operator[] signs =
+            new ArithmeticExpressionEvaluator.Operator[entries];
+        ArithmeticExpressionEvaluator.Constant[] named =
+            new ArithmeticExpressionEvaluator.Constant[entries];
+        for (int j = 0; j < entries; j++) {
+            String name = readString(in, where);
+            if (CompiledExpression.isSigned(registry, name)) {
+                signs[j] = registry.getOperator(name.substring(0, 1));
+                name = name.substring(1);
+            }
+            named[j] = registry.getConstant(name);
+            if ((named[j] == null) && (name.isEmpty() ||
+                    !Character.isLetter(name.charAt(0)))) {
+                throw new IOException(where + ": invalid variable \"" +
+                    name + "\"");
+            }
+            names[j] = name;
+        }
+        need(in, 2, where);
+        int poolSize = in.getShort();
+        need(in, 8L * poolSize, where);
+        double[] pool = new double[poolSize];
+        for (int j = 0; j < poolSize; j++) pool[j] = in.getDouble();
+
+        // a signed name takes three instructions and one extra constant,
+        // a symbolic constant one extra constant
+        need(in, 4, where);
+        int length = in.getInt();
+        need(in, 3L * length, where);
+        int start = in.position();
+        int extraCode = 0;
+        int extraPool = 0;
+        for (int j = 0; j < length; j++) {
+            int opcode = in.get();
+            int index = in.getShort();
+            int limit = (opcode == OP_CONST) ? poolSize :
+                (opcode == OP_VARIABLE) ? entries :
+                (opcode == OP_SYMBOL) ? symbolValues.length : 0;
+            if ((index < 0) || (index >= limit)) {
+                throw new IOException(where + ": corrupt instruction " + j);
+            }
+            if (opcode == OP_VARIABLE) {
+                if (signs[index] != null) {
+                    extraCode += 2;
+                    extraPool++;
+                }
+                if (named[index] != null) extraPool++;
+            } else if ((opcode == OP_SYMBOL) &&
+                    (symbolOperators[mode][index] == null) &&
+                    (symbolFunctions[mode][index] == null)) {
+                extraPool++;
+            }
+        }
+        in.position(start);
+
+        int[] opcodes = new int[length + extraCode];
+        int[] operands = new int[opcodes.length];
+        ArithmeticExpressionEvaluator.Operator[] operators =
+            new ArithmeticExpressionEvaluator.Operator[opcodes.length];
+        ArithmeticExpressionEvaluator.Function[] functions =
+            new ArithmeticExpressionEvaluator.Function[opcodes.length];
+        double[] constants = Arrays.copyOf(pool, poolSize + extraPool);
+        int size = poolSize;
+
+        // variables are numbered in order of first use, as in
+        // CompiledExpression, so that the slots match
+        int[] slots = new int[entries];
+        Arrays.fill(slots, -1);
+        Map<String, Integer> slotIndex = new Map<>();
+        Queue<String> variables = new Queue<>();
+        int n = 0;
+        for (int j = 0; j < length; j++) {
+            int opcode = in.get();
+            int index = in.getShort();
+            if (opcode == OP_CONST) {
+                opcodes[n] = CompiledExpression.CONST;
+                operands[n++] = index;
+            } else if (opcode == OP_SYMBOL) {
+                if (symbolOperators[mode][index] != null) {
+                    opcodes[n] = CompiledExpression.OPERATOR;
+                    operators[n++] = symbolOperators[mode][index];
+                } else if (symbolFunctions[mode][index] != null) {
+                    opcodes[n] = CompiledExpression.FUNCTION;
+                    functions[n++] = symbolFunctions[mode][index];
+                } else {
+                    constants[size] = symbolValues[index];
+                    opcodes[n] = CompiledExpression.CONST;
+                    operands[n++] = size++;
+                }
+            } else {
+                if (signs[index] != null) {
+                    opcodes[n] = CompiledExpression.CONST;
+                    operands[n++] = size++; // constants[size] is 0.0
+                }
+                if (named[index] != null) {
+                    constants[size] = named[index].eval();
+                    opcodes[n] = CompiledExpression.CONST;
+                    operands[n++] = size++;
+                } else {
+                    if (slots[index] < 0) {
+                        // "x" and "-x" are different entries but one slot
+                        if (!slotIndex.containsKey(names[index])) {
+                            slotIndex.put(names[index], variables.size());
+                            variables.add(names[index]);
+                        }
+                        slots[index] = slotIndex.get(names[index]);
+                    }
+                    opcodes[n] = CompiledExpression.VARIABLE;
+                    operands[n++] = slots[index];
+                }
+                if (signs[index] != null) {
+                    opcodes[n] = CompiledExpression.OPERATOR;
+                    operators[n++] = signs[index];
+                }
+            }
+        }
+
+        String[] slotNames = new String[variables.size()];
+        for (int j = 0; j < slotNames.length; j++) {
+            slotNames[j] = variables.remove();
+        }
+        try {
+            return new CompiledExpression(opcodes, operands, operators,
+                functions, constants, slotNames);
+        } catch (IllegalArgumentException e) {
+            // the stack depth does not add up
+            throw new IOException(where + ": " + e.getMessage());
+        }
+    }
+
+    // Map a file written by write(); the header and the symbol table are
+    // validated here, the programs themselves are decoded by get()
+    public static ProgramFile load(String fileName) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if ((in.remaining() < 8) || (in.getInt() != MAGIC)) {
+            throw new IOException(fileName + ": not a program file");
+        }
+        if (in.getShort() != FORMAT_VERSION) {
+            throw new IOException(fileName + ": unsupported format version");
+        }
+        int version = in.getShort();
+        if (version != ArithmeticExpressionEvaluator.REGISTRY_VERSION) {
+            throw new IOException(fileName + ": registry version " + version +
+                " does not match " +
+                ArithmeticExpressionEvaluator.REGISTRY_VERSION);
+        }
+
+        // every symbol must still be known to the evaluator; the names are
+        // resolved to operators, functions, and constants by the constructor
+        ArithmeticExpressionEvaluator registry =
+            new ArithmeticExpressionEvaluator("", new Queue<String>(), false);
+        need(in, 4, fileName);
+        int count = in.getInt();
+        need(in, 2L * count, fileName);
+        String[] symbols = new String[count];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = readString(in, fileName);
+            if (!registry.isSymbol(symbols[i])) {
+                throw new IOException(fileName + ": unknown symbol \"" +
+                    symbols[i] + "\"");
+            }
+        }
+
+        need(in, 4, fileName);
+        count = in.getInt();
+        need(in, 4L * count, fileName);
+        int[] offsets = new int[count];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.getInt();
+            if ((offsets[i] < in.position()) || (offsets[i] >= in.limit())) {
+                throw new IOException(fileName + ": corrupt program offset");
+            }
+        }
+        return new ProgramFile(fileName, in, symbols, offsets);
+    }
+
+    // Write the postfix programs of a list of evaluators to a file; any
+    // evaluator not yet converted to postfix is converted first
+    public static void write(String fileName,
+            ArithmeticExpressionEvaluator... evaluators) throws IOException {
+        Map<String, Integer> symbolIndex = new Map<>();
+        Queue<String> symbolNames = new Queue<>();
+        byte[][] programs = new byte[evaluators.length][];
+        for (int i = 0; i < evaluators.length; i++) {
+            programs[i] = encode(evaluators[i], symbolIndex, symbolNames);
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+        out.writeShort(ArithmeticExpressionEvaluator.REGISTRY_VERSION);
+        out.writeInt(symbolNames.size());
+        String name = symbolNames.remove();
+        while (name != null) {
+            writeString(out, name);
+            name = symbolNames.remove();
+        }
+        out.writeInt(programs.length);
+        int offset = out.size() + 4 * programs.length;
+        for (byte[] program : programs) {
+            out.writeInt(offset);
+            offset += program.length;
+        }
+
+        try (FileOutputStream file = new FileOutputStream(fileName)) {
+            header.writeTo(file);
+            for (byte[] program : programs) file.write(program);
+        }
+    }
+
+    // Encode a single program; new symbols are added to the symbol table
+    private static byte[] encode(ArithmeticExpressionEvaluator evaluator,
+            Map<String, Integer> symbolIndex, Queue<String> symbolNames)
+            throws IOException {
+        String[] tokens = evaluator.getPostfixTokens();
+        Map<String, Integer> variableIndex = new Map<>();
+        Queue<String> variables = new Queue<>();
+        Map<Double, Integer> constIndex = new Map<>();
+        Queue<Double> pool = new Queue<>();
+
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+        for (String token : tokens) {
+            if (evaluator.isSymbol(token)) {
+                if (!symbolIndex.containsKey(token)) {
+                    symbolIndex.put(token, symbolNames.size());
+                    symbolNames.add(token);
+                }
+                out.writeByte(OP_SYMBOL);
+                out.writeShort(symbolIndex.get(token));
+            } else if (isName(evaluator, token)) {
+                // other names, signed or not, are kept in the variable table
+                if (!variableIndex.containsKey(token)) {
+                    variableIndex.put(token, variables.size());
+                    variables.add(token);
+                }
+                out.writeByte(OP_VARIABLE);
+                out.writeShort(variableIndex.get(token));
+            } else {
+                Double value;
+                try {
+                    value = Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                        "Invalid expression at \"" + token + "\"");
+                }
+                if (!constIndex.containsKey(value)) {
+                    constIndex.put(value, pool.size());
+                    pool.add(value);
+                }
+                out.writeByte(OP_CONST);
+                out.writeShort(constIndex.get(value));
+            }
+        }
+        if ((variables.size() > Short.MAX_VALUE) ||
+                (pool.size() > Short.MAX_VALUE) ||
+                (symbolNames.size() > Short.MAX_VALUE)) {
+            throw new IOException("expression too large to be written");
+        }
+
+        ByteArrayOutputStream program = new ByteArrayOutputStream();
+        DataOutputStream prog = new DataOutputStream(program);
+        writeString(prog, evaluator.getOriginalExpression());
+        prog.writeByte(evaluator.isFastMath() ? FLAG_FAST_MATH : 0);
+        prog.writeShort(variables.size());
+        String variable = variables.remove();
+        while (variable != null) {
+            writeString(prog, variable);
+            variable = variables.remove();
+        }
+        prog.writeShort(pool.size());
+        Double value = pool.remove();
+        while (value != null) {
+            prog.writeDouble(value);
+            value = pool.remove();
+        }
+        prog.writeInt(tokens.length);
+        code.writeTo(prog);
+        prog.flush();
+        return program.toByteArray();
+    }
+
+    // check if a token is a name, i.e. starts with a letter once the sign of
+    // a signed name is removed; as in CompiledExpression, "NaN" and
+    // "Infinity" are names, although Double.parseDouble() accepts them
+    private static boolean isName(ArithmeticExpressionEvaluator evaluator,
+            String token) {
+        String name = CompiledExpression.isSigned(evaluator, token) ?
+            token.substring(1) : token;
+        return !name.isEmpty() && Character.isLetter(name.charAt(0));
+    }
+
+    // write a string as its length followed by its UTF-8 bytes
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("string too long to be written");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    // read a string written by writeString()
+    private static String readString(ByteBuffer in, String where)
+            throws IOException {
+        need(in, 2, where);
+        int length = in.getShort();
+        need(in, length, where);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // check that n more bytes can be read; a negative n comes from a
+    // corrupt count
+    private static void need(ByteBuffer in, long n, String where)
+            throws IOException {
+        if ((n < 0) || (n > in.remaining())) {
+            throw new IOException(where + ": truncated or corrupt");
+        }
+    }
+
+    // Unit test: round trip of a generated formula library, with timing of
+    // compiling from source versus loading the compiled file
+    public static void main(String[] args) throws IOException {
+        int count = 50000;
+        if (args.length > 0) count = Integer.parseInt(args[0]);
+        String[] templates = {
+            "log((2+3*5)^-2/sin(pi/3))",
+            "exp(-%d/7.5)*cos(pi/%d)+abs(1-%d)",
+            "(%d+1)*(%d-1)/(%d^2+1)",
+            "tan(0.%d)+ln(%d)-2^(-%d)",
+            "1.5e-3*%d+sin(%d)*cos(%d)-e",
+            "x*-y+%d/x^2-e*-pi+sin(-x)",
+            "NaN*%d+Infinity-x/-Infinity",
+        };
+        String[] exprs = new String[count];
+        for (int i = 0; i < count; i++) {
+            String n = String.valueOf(i % 97 + 1);
+            exprs[i] = templates[i % templates.length].replace("%d", n);
+        }
+
+        long t0 = System.nanoTime();
+        ArithmeticExpressionEvaluator[] compiled =
+            new ArithmeticExpressionEvaluator[count];
+        for (int i = 0; i < count; i++) {
+            compiled[i] = new ArithmeticExpressionEvaluator(exprs[i], i % 2 == 1);
+            compiled[i].convInfixToPostfix();
+        }
+        long t1 = System.nanoTime();
+
+        File file = File.createTempFile("expeval", ".bin");
+        file.deleteOnExit();
+        write(file.getPath(), compiled);
+        long t2 = System.nanoTime();
+        ProgramFile programs = load(file.getPath());
+        long t3 = System.nanoTime();
+
+        double[] values = { 1.5, -2.5, 0.5 };
+        CompiledExpression[] loaded = new CompiledExpression[count];
+        double[] actual = new double[count];
+        for (int i = 0; i < count; i++) {
+            loaded[i] = programs.get(i);
+            actual[i] = loaded[i].eval(values);
+        }
+        long t4 = System.nanoTime();
+
+        // the loaded programs match the ones compiled from source; the fast
+        // math flag is covered because the two function sets differ
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            CompiledExpression reference = new CompiledExpression(compiled[i]);
+            double expected = reference.eval(values);
+            boolean same = (Double.compare(expected, actual[i]) == 0) &&
+                Arrays.equals(reference.getVariables(),
+                    loaded[i].getVariables()) &&
+                (reference.getLength() == loaded[i].getLength()) &&
+                exprs[i].equals(programs.getExpression(i));
+            if (reference.getVariables().length == 0) {
+                same &= Double.compare(compiled[i].evalPostfix(),
+                    actual[i]) == 0;
+            }
+            if (!same) {
+                if (failures++ < 10) {
+                    System.out.println("  FAIL " + exprs[i] + ": " +
+                        expected + " != " + actual[i]);
+                }
+            }
+        }
+
+        System.out.println("Programs : " + count + " (" + file.length() +
+            " bytes)");
+        System.out.println("Compile  : " + (t1 - t0) / 1000000 + " ms");
+        System.out.println("Write    : " + (t2 - t1) / 1000000 + " ms");
+        System.out.println("Load     : " + (t3 - t2) / 1000000 + " ms");
+        System.out.println("Decode   : " + (t4 - t3) / 1000000 + " ms " +
+            "(including evaluation)");
+
+        // every truncation and a number of corrupted bytes of a small file
+        // must either decode or fail with an IOException
+        ArithmeticExpressionEvaluator[] sample =
+            new ArithmeticExpressionEvaluator[templates.length];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = new ArithmeticExpressionEvaluator(
+                templates[i].replace("%d", "3"), i % 2 == 1);
+        }
+        write(file.getPath(), sample);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int corrupt = 0;
+        Random random = new Random(2017);
+        for (int trial = 0; trial < bytes.length + 2000; trial++) {
+            byte[] damaged;
+            if (trial < bytes.length) {
+                damaged = Arrays.copyOf(bytes, trial);
+            } else {
+                damaged = bytes.clone();
+                damaged[random.nextInt(bytes.length)] ^=
+                    (byte) (1 << random.nextInt(8));
+            }
+            Files.write(file.toPath(), damaged);
+            try {
+                ProgramFile damagedFile = load(file.getPath());
+                for (int i = 0; i < damagedFile.size(); i++) {
+                    damagedFile.getExpression(i);
+                    CompiledExpression expr = damagedFile.get(i);
+                    expr.eval(new double[expr.getVariables().length]);
+                }
+            } catch (IOException e) {
+                corrupt++;
+            } catch (RuntimeException e) {
+                if (failures++ < 10) {
+                    System.out.println("  FAIL damaged file: " + e);
+                }
+            }
+        }
+        System.out.println("Damaged  : " + (bytes.length + 2000) +
+            " files, " + corrupt + " reported as corrupt");
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures != 0) System.exit(1);
+    }
+}
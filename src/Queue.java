@@ -23,9 +23,11 @@
 
 package expeval;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
-public class Queue<Item> {
+public class Queue<Item> implements Iterable<Item> {
     private Node<Item> head; // head of queue
     private Node<Item> tail; // tail of queue
     private int size;        // size of the queue
@@ -78,6 +80,23 @@ public class Queue<Item> {
         return head.item;
     }
 
+    // Return an iterator over the items, from head to tail, that leaves the
+    // queue unchanged.
+    public Iterator<Item> iterator() {
+        return new Iterator<Item>() {
+            private Node<Item> node = head;
+
+            public boolean hasNext() { return (node != null); }
+
+            public Item next() {
+                if (node == null) throw new NoSuchElementException();
+                Item item = node.item;
+                node = node.next;
+                return item;
+            }
+        };
+    }
+
     // Return a string representation of the queue.
     public String toString() {
         StringBuilder s = new StringBuilder();
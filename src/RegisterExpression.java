@@ -0,0 +1,395 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  A register-based form of a compiled expression
+//  Every instruction is three-address (dst = a op b, or dst = func(a)), and
+//  the kind of each source operand (register, variable, or constant) is part
+//  of the opcode. Pushing a variable or a constant is therefore never an
+//  instruction of its own: "var op const", "const op var", "func(var)" and
+//  the like are fused into single superinstructions. Registers are assigned
+//  by a linear pass that always reuses the lowest free register.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.util.Arrays;
+
+public class RegisterExpression {
+    // opcodes; R = register, V = variable, C = constant operand
+    private static final int MOV_V = 0;  // r[dst] = values[a]
+    private static final int MOV_C = 1;  // r[dst] = constants[a]
+    private static final int OP_RR = 2;  // r[dst] = r[a] op r[b]
+    private static final int OP_RV = 3;  // r[dst] = r[a] op values[b]
+    private static final int OP_RC = 4;  // r[dst] = r[a] op constants[b]
+    private static final int OP_VR = 5;  // r[dst] = values[a] op r[b]
+    private static final int OP_VV = 6;  // r[dst] = values[a] op values[b]
+    private static final int OP_VC = 7;  // r[dst] = values[a] op constants[b]
+    private static final int OP_CR = 8;  // r[dst] = constants[a] op r[b]
+    private static final int OP_CV = 9;  // r[dst] = constants[a] op values[b]
+    private static final int FN_R = 10;  // r[dst] = func(r[a])
+    private static final int FN_V = 11;  // r[dst] = func(values[a])
+
+    // operand kinds used while compiling
+    private static final int REGISTER = 0;
+    private static final int VARIABLE = 1;
+    private static final int CONSTANT = 2;
+
+    private int[] code;      // four ints per instruction: opcode, dst, a, b
+    private ArithmeticExpressionEvaluator.Operator[] operators;
+    private ArithmeticExpressionEvaluator.Function[] functions;
+    private double[] constants; // constant pool
+    private String[] variables; // variable names, indexed by slot
+    private int registers;      // number of registers
+    private int result;         // register holding the result
+
+    // state of the compiler; released after the constructor
+    private int length;         // number of instructions emitted
+    private int[] kinds;        // operand stack: kind of each entry
+    private int[] indexes;      // operand stack: index of each entry
+    private int top = -1;
+    private int[] refs;         // references to each register
+    private int[] regTemp;      // temp held in each register, or -1
+    private int[] pendingLoads; // LOADs of each temp not yet compiled
+    private int[] tempReg;      // register holding each temp
+
+    // keeps the benchmark results alive
+    private static volatile double sink;
+
+    // Constructor; compiles, optimizes, and converts the postfix expression
+    // of an evaluator
+    public RegisterExpression(ArithmeticExpressionEvaluator evaluator) {
+        this(new CompiledExpression(evaluator).optimize());
+    }
+
+    // Constructor; converts a stack-based expression
+    public RegisterExpression(CompiledExpression expr) {
+        int n = expr.getLength();
+        code = new int[4 * 2 * n]; // at most two instructions per input
+        operators = new ArithmeticExpressionEvaluator.Operator[2 * n];
+        functions = new ArithmeticExpressionEvaluator.Function[2 * n];
+        constants = expr.getConstants();
+        variables = expr.getVariables();
+
+        kinds = new int[n];
+        indexes = new int[n];
+        refs = new int[n];
+        regTemp = new int[n];
+        tempReg = new int[expr.getTemps()];
+        pendingLoads = new int[expr.getTemps()];
+        for (int i = 0; i < n; i++) {
+            if (expr.getOpcode(i) == CompiledExpression.LOAD) {
+                pendingLoads[expr.getOperand(i)]++;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            int operand = expr.getOperand(i);
+            switch (expr.getOpcode(i)) {
+                case CompiledExpression.CONST:
+                    push(CONSTANT, operand);
+                    break;
+                case CompiledExpression.VARIABLE:
+                    push(VARIABLE, operand);
+                    break;
+                case CompiledExpression.LOAD:
+                    pendingLoads[operand]--;
+                    push(REGISTER, tempReg[operand]);
+                    break;
+                case CompiledExpression.STORE:
+                    // the value stays in its register while LOADs are pending
+                    materialize();
+                    tempReg[operand] = indexes[top];
+                    regTemp[indexes[top]] = operand;
+                    break;
+                case CompiledExpression.OPERATOR:
+                    if ((kinds[top] == CONSTANT) &&
+                            (kinds[top - 1] == CONSTANT)) {
+                        materialize();
+                    }
+                    int kindB = kinds[top];
+                    int b = pop();
+                    int kindA = kinds[top];
+                    int a = pop();
+                    int dst = allocate();
+                    operators[length] = expr.getOperator(i);
+                    emit(OP_RR + 3 * kindA + kindB, dst, a, b);
+                    push(REGISTER, dst);
+                    break;
+                default:
+                    if (kinds[top] == CONSTANT) materialize();
+                    int kind = kinds[top];
+                    int x = pop();
+                    int fdst = allocate();
+                    functions[length] = expr.getFunction(i);
+                    emit((kind == REGISTER) ? FN_R : FN_V, fdst, x, 0);
+                    push(REGISTER, fdst);
+                    break;
+            }
+        }
+        materialize();
+        result = indexes[top];
+
+        code = Arrays.copyOf(code, 4 * length);
+        operators = Arrays.copyOf(operators, length);
+        functions = Arrays.copyOf(functions, length);
+        kinds = indexes = refs = regTemp = pendingLoads = tempReg = null;
+    }
+
+    // push an operand, referencing its register
+    private void push(int kind, int index) {
+        kinds[++top] = kind;
+        indexes[top] = index;
+        if (kind == REGISTER) refs[index]++;
+    }
+
+    // pop an operand, releasing its register; the register can be reused as
+    // the destination of the instruction that reads it
+    private int pop() {
+        int index = indexes[top];
+        if (kinds[top--] == REGISTER) refs[index]--;
+        return index;
+    }
+
+    // return the lowest free register; a register is free when no operand
+    // refers to it and it holds no temp that is still to be loaded
+    private int allocate() {
+        for (int r = 0; ; r++) {
+            boolean pinned = (r < registers) && (regTemp[r] >= 0) &&
+                (pendingLoads[regTemp[r]] > 0);
+            if ((r >= registers) || ((refs[r] == 0) && !pinned)) {
+                if (r >= registers) registers = r + 1;
+                regTemp[r] = -1;
+                return r;
+            }
+        }
+    }
+
+    // move the top operand into a register if it is not in one
+    private void materialize() {
+        if (kinds[top] == REGISTER) return;
+        int kind = kinds[top];
+        int index = pop();
+        int dst = allocate();
+        emit((kind == VARIABLE) ? MOV_V : MOV_C, dst, index, 0);
+        push(REGISTER, dst);
+    }
+
+    // append an instruction
+    private void emit(int opcode, int dst, int a, int b) {
+        code[4 * length] = opcode;
+        code[4 * length + 1] = dst;
+        code[4 * length + 2] = a;
+        code[4 * length + 3] = b;
+        length++;
+    }
+
+    // return the variable names; the index of a name is its slot in eval()
+    public String[] getVariables() { return variables.clone(); }
+
+    // return the number of instructions
+    public int getLength() { return code.length / 4; }
+
+    // return the number of registers that eval() needs
+    public int getRegisterCount() { return registers; }
+
+    // evaluate with the given variable values, indexed by slot
+    public double eval(double... values) {
+        return eval(values, new double[registers]);
+    }
+
+    // evaluate with caller-supplied registers, at least getRegisterCount();
+    // registers must not be shared by concurrent calls
+    public double eval(double[] values, double[] r) {
+        int[] code = this.code;
+        for (int pc = 0, i = 0; pc < code.length; pc += 4, i++) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+            switch (code[pc]) {
+                case MOV_V: r[dst] = values[a]; break;
+                case MOV_C: r[dst] = constants[a]; break;
+                case OP_RR: r[dst] = operators[i].eval(r[a], r[b]); break;
+                case OP_RV: r[dst] = operators[i].eval(r[a], values[b]); break;
+                case OP_RC:
+                    r[dst] = operators[i].eval(r[a], constants[b]);
+                    break;
+                case OP_VR: r[dst] = operators[i].eval(values[a], r[b]); break;
+                case OP_VV:
+                    r[dst] = operators[i].eval(values[a], values[b]);
+                    break;
+                case OP_VC:
+                    r[dst] = operators[i].eval(values[a], constants[b]);
+                    break;
+                case OP_CR:
+                    r[dst] = operators[i].eval(constants[a], r[b]);
+                    break;
+                case OP_CV:
+                    r[dst] = operators[i].eval(constants[a], values[b]);
+                    break;
+                case FN_R: r[dst] = functions[i].eval(r[a]); break;
+                default:   r[dst] = functions[i].eval(values[a]); break;
+            }
+        }
+        return r[result];
+    }
+
+    // return the name of an operand of an instruction
+    private String operand(int kind, int index) {
+        if (kind == REGISTER) return "r" + index;
+        if (kind == VARIABLE) return variables[index];
+        return String.valueOf(constants[index]);
+    }
+
+    // Return a listing of the instructions, one per line.
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < getLength(); i++) {
+            int opcode = code[4 * i];
+            int a = code[4 * i + 2];
+            int b = code[4 * i + 3];
+            s.append("r").append(code[4 * i + 1]).append(" = ");
+            if (opcode == MOV_V) {
+                s.append(operand(VARIABLE, a));
+            } else if (opcode == MOV_C) {
+                s.append(operand(CONSTANT, a));
+            } else if (opcode == FN_R) {
+                s.append(functions[i]).append('(')
+                    .append(operand(REGISTER, a)).append(')');
+            } else if (opcode == FN_V) {
+                s.append(functions[i]).append('(')
+                    .append(operand(VARIABLE, a)).append(')');
+            } else {
+                s.append(operand((opcode - OP_RR) / 3, a)).append(' ')
+                    .append(operators[i]).append(' ')
+                    .append(operand((opcode - OP_RR) % 3, b));
+            }
+            s.append('\n');
+        }
+        s.append("return r").append(result).append('\n');
+        return s.toString();
+    }
+
+    // Unit test and benchmark: instruction count and time per evaluation of
+    // evalPostfix(), CompiledExpression, and RegisterExpression over a corpus
+    // of formulas in the variables x, y and z; the stack and register forms
+    // are measured both as compiled and after optimize(), so that like is
+    // compared with like
+    public static void main(String[] args) {
+        String[] corpus = {
+            "1.5*x + 2.5*y - 0.5*z + 1",
+            "2*x^2 + 3*x - 5",
+            "(x+y)*(x-y)/(x*x + y*y + 1)",
+            "sin(x)*cos(y) + sin(y)*cos(x)",
+            "exp((y-x)*(x-y)/2)/(2*pi)",
+            "ln(1+x)/x + abs(y-x)",
+            "tan(x/4) + log(y+10)*e",
+            "x*y*z - x/y/z + (x+y+z)^2",
+            "-x + y*-z",
+            "sin(x)^2 + cos(x)^2 + sin(x)^2*z",
+        };
+        double[] point = { 0.7, 1.3, 2.1 }; // x, y, z
+        String[] names = { "x", "y", "z" };
+        int iterations = 20000;
+        if (args.length > 0) iterations = Integer.parseInt(args[0]);
+
+        int failures = 0;
+        // "raw" is the expression as compiled, "opt" after optimize()
+        System.out.printf("%-32s %-23s %s%n", "", "instructions", "ns/eval");
+        System.out.printf("%-32s %7s %7s %7s %8s %13s %13s%n", "", "",
+            "stack", "reg", "", "stack", "reg");
+        System.out.printf("%-32s %7s %3s %3s %3s %3s %8s %6s %6s %6s %6s%n",
+            "formula", "postfix", "raw", "opt", "raw", "opt", "postfix",
+            "raw", "opt", "raw", "opt");
+        for (String formula : corpus) {
+            // evalPostfix() has no variables, so it gets the values inline
+            String literal = formula;
+            for (int v = 0; v < names.length; v++) {
+                literal = literal.replaceAll("\\b" + names[v] + "\\b",
+                    String.valueOf(point[v]));
+            }
+            ArithmeticExpressionEvaluator postfix =
+                new ArithmeticExpressionEvaluator(literal);
+            int tokens = postfix.getPostfixTokens().length;
+
+            // [0] as compiled, [1] optimized
+            CompiledExpression plain = new CompiledExpression(
+                new ArithmeticExpressionEvaluator(formula));
+            CompiledExpression[] stacks = { plain, plain.optimize() };
+            RegisterExpression[] regs = { new RegisterExpression(stacks[0]),
+                new RegisterExpression(stacks[1]) };
+            String[] vars = plain.getVariables();
+            double[] values = new double[vars.length];
+            for (int v = 0; v < vars.length; v++) {
+                for (int w = 0; w < names.length; w++) {
+                    if (vars[v].equals(names[w])) values[v] = point[w];
+                }
+            }
+
+            double expected = postfix.evalPostfix();
+            for (int k = 0; k < 2; k++) {
+                if ((Double.compare(stacks[k].eval(values), expected) != 0) ||
+                        (Double.compare(regs[k].eval(values), expected) != 0)) {
+                    System.out.println("  FAIL " + formula);
+                    failures++;
+                }
+            }
+
+            // three rounds; the last one is reported
+            double sum = 0;
+            long tPostfix = 0;
+            long[] tStack = new long[2];
+            long[] tReg = new long[2];
+            for (int round = 0; round < 3; round++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sum += postfix.evalPostfix();
+                }
+                tPostfix = System.nanoTime() - t0;
+                for (int k = 0; k < 2; k++) {
+                    double[] frame = new double[stacks[k].getStackSize()];
+                    t0 = System.nanoTime();
+                    for (int i = 0; i < 50 * iterations; i++) {
+                        sum += stacks[k].eval(values, frame);
+                    }
+                    tStack[k] = System.nanoTime() - t0;
+                    frame = new double[regs[k].getRegisterCount()];
+                    t0 = System.nanoTime();
+                    for (int i = 0; i < 50 * iterations; i++) {
+                        sum += regs[k].eval(values, frame);
+                    }
+                    tReg[k] = System.nanoTime() - t0;
+                }
+            }
+            sink = sum;
+            double n = 50.0 * iterations;
+            System.out.printf("%-32s %7d %3d %3d %3d %3d %8.1f " +
+                "%6.1f %6.1f %6.1f %6.1f%n", formula, tokens,
+                stacks[0].getLength(), stacks[1].getLength(),
+                regs[0].getLength(), regs[1].getLength(),
+                (double) tPostfix / iterations, tStack[0] / n, tStack[1] / n,
+                tReg[0] / n, tReg[1] / n);
+        }
+
+        RegisterExpression sample = new RegisterExpression(
+            new ArithmeticExpressionEvaluator(corpus[9]));
+        System.out.println("\n" + corpus[9] + ":\n" + sample);
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures != 0) System.exit(1);
+    }
+}
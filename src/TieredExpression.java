@@ -0,0 +1,291 @@
+//******************************************************************************
+//
+// Copyright (c) 2017, Amir Baserinia (www.baserinia.com)
+//
+// Permission to use, copy, modify, and/or distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+// REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+// AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+// INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+// LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE
+// OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+// PERFORMANCE OF THIS SOFTWARE.
+//
+//******************************************************************************
+//
+//  An expression that adapts its execution strategy to how often it is used
+//  It starts by interpreting the postfix tokens directly, which costs nothing
+//  up front. After a number of calls it is compiled (CompiledExpression), and
+//  after more calls it is optimized (constant folding and common
+//  subexpression elimination). The new form is published atomically, so
+//  concurrent callers see either the old or the new form, both of which
+//  return the same results. Once optimized, calls are no longer counted, so
+//  hot callers on many threads do not contend on the counter, and each
+//  thread reuses its own evaluation stack.
+//
+//******************************************************************************
+
+package expeval;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TieredExpression {
+    // execution tiers, from cheapest to set up to fastest to run
+    public enum Tier { INTERPRETED, COMPILED, OPTIMIZED }
+
+    // default number of calls before each promotion
+    public static final long COMPILE_THRESHOLD = 100;
+    public static final long OPTIMIZE_THRESHOLD = 10000;
+
+    private final ArithmeticExpressionEvaluator evaluator;
+    private final String[] tokens;     // postfix tokens for the interpreter
+    private final String[] variables;  // variable names, indexed by slot
+    private final Map<String, Integer> slots; // slot of each variable
+    private final int maxStack;        // stack depth needed by interpret()
+    private final long compileThreshold;
+    private final long optimizeThreshold;
+    private final AtomicLong invocations = new AtomicLong();
+    private final ThreadLocal<double[]> stacks = new ThreadLocal<>();
+
+    private volatile CompiledExpression code; // null while interpreted
+    private volatile Tier tier = Tier.INTERPRETED;
+
+    // Constructor with the default thresholds
+    public TieredExpression(ArithmeticExpressionEvaluator evaluator) {
+        this(evaluator, COMPILE_THRESHOLD, OPTIMIZE_THRESHOLD);
+    }
+
+    // Constructor; the expression is compiled on call number compileThreshold
+    // and optimized on call number optimizeThreshold
+    public TieredExpression(ArithmeticExpressionEvaluator evaluator,
+            long compileThreshold, long optimizeThreshold) {
+        if ((compileThreshold < 1) || (optimizeThreshold < 1)) {
+            throw new IllegalArgumentException("Thresholds must be positive");
+        }
+        this.evaluator = evaluator;
+        this.compileThreshold = compileThreshold;
+        this.optimizeThreshold = optimizeThreshold;
+        tokens = evaluator.getPostfixTokens();
+
+        // a single pass to check the stack depth and number the variables in
+        // order of appearance, the same way as CompiledExpression
+        slots = new Map<>();
+        Queue<String> names = new Queue<>();
+        int depth = 0;
+        int peak = 0;
+        for (String token : tokens) {
+            if (evaluator.getOperator(token) != null) {
+                if (depth < 2) throw invalid(token);
+                depth--;
+            } else if (evaluator.getFunction(token) != null) {
+                if (depth < 1) throw invalid(token);
+            } else {
+                String name = CompiledExpression.isSigned(evaluator, token) ?
+                    token.substring(1) : token;
+                if ((evaluator.getConstant(name) == null) && !name.isEmpty() &&
+                        Character.isLetter(name.charAt(0)) &&
+                        !slots.containsKey(name)) {
+                    slots.put(name, names.size());
+                    names.add(name);
+                }
+                peak = Math.max(peak, ++depth);
+            }
+        }
+        if (depth != 1) throw invalid(evaluator.getOriginalExpression());
+        maxStack = peak;
+        variables = new String[names.size()];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = names.remove();
+        }
+    }
+
+    // error for an invalid token or expression
+    private static IllegalArgumentException invalid(String token) {
+        return new IllegalArgumentException(
+            "Invalid expression at \"" + token + "\"");
+    }
+
+    // return the variable names; the index of a name is its slot in eval()
+    public String[] getVariables() { return variables.clone(); }
+
+    // return the slot of a variable, or -1 if the expression does not use it
+    public int getSlot(String name) {
+        return slots.containsKey(name) ? slots.get(name) : -1;
+    }
+
+    // return the current execution tier
+    public Tier getTier() { return tier; }
+
+    // return the number of calls to eval() so far; counting stops once the
+    // expression is optimized, since there is nothing left to promote
+    public long getInvocations() { return invocations.get(); }
+
+    // evaluate with the given variable values, indexed by slot; safe to call
+    // from several threads at once
+    public double eval(double... values) {
+        if (tier != Tier.OPTIMIZED) {
+            long n = invocations.incrementAndGet();
+            // exactly one caller sees each threshold, so each promotion runs
+            // once
+            if (n == compileThreshold) promote(Tier.COMPILED);
+            if (n == optimizeThreshold) promote(Tier.OPTIMIZED);
+        }
+        CompiledExpression compiled = code;
+        if (compiled != null) {
+            return compiled.eval(values, stack(compiled.getStackSize()));
+        }
+        return interpret(values);
+    }
+
+    // return the evaluation stack of the calling thread, with at least size
+    // elements
+    private double[] stack(int size) {
+        double[] stack = stacks.get();
+        if ((stack == null) || (stack.length < size)) {
+            stack = new double[size];
+            stacks.set(stack);
+        }
+        return stack;
+    }
+
+    // move to a higher tier; callers keep using the current form until the
+    // new one is published
+    private synchronized void promote(Tier target) {
+        if (target.compareTo(tier) <= 0) return;
+        CompiledExpression compiled = code;
+        if (compiled == null) compiled = new CompiledExpression(evaluator);
+        if (target == Tier.OPTIMIZED) compiled = compiled.optimize();
+        code = compiled;
+        tier = target;
+    }
+
+    // evaluate the postfix tokens directly, resolving every token by name
+    private double interpret(double[] values) {
+        double[] stack = new double[maxStack];
+        int top = -1;
+        for (String token : tokens) {
+            ArithmeticExpressionEvaluator.Operator op =
+                evaluator.getOperator(token);
+            if (op != null) {
+                double b = stack[top--];
+                stack[top] = op.eval(stack[top], b);
+                continue;
+            }
+            ArithmeticExpressionEvaluator.Function func =
+                evaluator.getFunction(token);
+            if (func != null) {
+                stack[top] = func.eval(stack[top]);
+                continue;
+            }
+
+            boolean signed = CompiledExpression.isSigned(evaluator, token);
+            String name = signed ? token.substring(1) : token;
+            double value;
+            if (evaluator.getConstant(name) != null) {
+                value = evaluator.getConstant(name).eval();
+            } else if (slots.containsKey(name)) {
+                value = values[slots.get(name)];
+            } else {
+                try {
+                    value = Double.parseDouble(name);
+                } catch (NumberFormatException e) {
+                    throw invalid(token);
+                }
+            }
+            if (signed) {
+                value = evaluator.getOperator(token.substring(0, 1))
+                    .eval(0.0, value);
+            }
+            stack[++top] = value;
+        }
+        return stack[top];
+    }
+
+    // Unit test: concurrent callers across all promotions, and the cost of
+    // a call in each tier
+    public static void main(String[] args) throws InterruptedException {
+        String expr = "sin(x)^2 + cos(x)^2 * (y + 2*pi/3) - sin(x)^2 / " +
+            "(1 + abs(y)) + exp(-2) * -y";
+        CompiledExpression reference = new CompiledExpression(
+            new ArithmeticExpressionEvaluator(expr));
+        final TieredExpression tiered = new TieredExpression(
+            new ArithmeticExpressionEvaluator(expr), 1000, 20000);
+        final int slotX = tiered.getSlot("x");
+        int failures = 0;
+
+        // every thread checks every result against the reference
+        final int threads = 8;
+        final int calls = 10000;
+        final int[] errors = new int[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    double[] values = new double[2];
+                    for (int i = 0; i < calls; i++) {
+                        values[slotX] = (id * calls + i) * 1e-4;
+                        values[1 - slotX] = i % 17 - 8;
+                        if (Double.compare(tiered.eval(values),
+                                reference.eval(values)) != 0) {
+                            errors[id]++;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        for (int e : errors) failures += e;
+        System.out.println("Calls    : " + threads * calls + " from " +
+            threads + " threads, " + tiered.getInvocations() + " counted");
+        System.out.println("Tier     : " + tiered.getTier());
+        if (tiered.getTier() != Tier.OPTIMIZED) failures++;
+        // counting stops at the last promotion, give or take the calls that
+        // were already past the tier check
+        if ((tiered.getInvocations() < 20000) ||
+                (tiered.getInvocations() >= threads * calls)) {
+            failures++;
+        }
+
+        // cost per call in each tier; three rounds over all tiers so that
+        // every form is warmed up, and the last one is reported
+        Tier[] targets = Tier.values();
+        TieredExpression[] singles = new TieredExpression[targets.length];
+        for (int k = 0; k < targets.length; k++) {
+            long compileAt = (targets[k] == Tier.INTERPRETED) ?
+                Long.MAX_VALUE : 1;
+            long optimizeAt = (targets[k] == Tier.OPTIMIZED) ?
+                1 : Long.MAX_VALUE;
+            singles[k] = new TieredExpression(
+                new ArithmeticExpressionEvaluator(expr), compileAt,
+                optimizeAt);
+        }
+        int n = 200000;
+        long[] times = new long[targets.length];
+        double[] sums = new double[targets.length];
+        for (int round = 0; round < 3; round++) {
+            for (int k = 0; k < targets.length; k++) {
+                double sum = 0;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    sum += singles[k].eval(i * 1e-5, 0.5);
+                }
+                times[k] = System.nanoTime() - t0;
+                sums[k] = sum;
+            }
+        }
+        for (int k = 0; k < targets.length; k++) {
+            if (singles[k].getTier() != targets[k]) failures++;
+            System.out.printf("  %-12s %8.1f ns/call (checksum %g)%n",
+                targets[k], (double) times[k] / n, sums[k]);
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures != 0) System.exit(1);
+    }
+}